@@ -11,6 +11,10 @@
 In separate shell windows:
 > java MyWebServer
 The program will use the default port number (2540).
+> java MyWebServer 2540 -proxy /api/ least localhost:2541,localhost:2542
+An optional first argument changes the port number. Each "-proxy <prefix> <least|hash> <host:port>[,<host:port>...]"
+forwards requests under <prefix> to the listed upstream servers, e.g. start two more MyWebServer instances
+(after changing their port) and ask for http://localhost:2540/api/dog.txt.
 
 5. List of files:
 a. MyWebServer.java
@@ -28,22 +32,52 @@ I dealt with some security issues: if someone sends some HTTP GET request with p
 the request will be denied for and the client will get a 403 error message.
 Last point, this server is able to send favicon.ico to browser if there is one in the directory.
 If not, it will send 404 error back, which is also acceptable to browsers.
+Connections are kept alive between requests (HTTP/1.1 default, or "Connection: keep-alive" from HTTP/1.0 clients)
+until the client asks to close or stays idle for 5 seconds.
+The server can also act as a reverse proxy: requests under a configured prefix have the prefix stripped and are
+forwarded to one of the route's upstreams, picked either by least outstanding requests or by consistent hashing
+of the path. Each upstream keeps a small pool of persistent connections, and is ejected for a while after
+3 consecutive failures (connect errors, broken responses, or 502/503/504 replies). Request and response bodies
+are streamed through rather than buffered.
 
 ----------------------------------------------------------*/
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // Worker class to handle HTTP requests from browser, each worker class will run on a new thread
 class ServerWorker extends Thread {
+    // How long (in milliseconds) an idle persistent connection is kept open waiting for the next request
+    private static final int KEEP_ALIVE_TIMEOUT = 5000;
+    // Charset for the text we read (request paths, files) and send back, the same one both ways so what we count is what we send
+    private static final Charset CHARSET = Charset.defaultCharset();
+
     private Socket sock;
+    // Reverse proxy routes, longest prefix first
+    private ArrayList<ProxyRoute> routes;
+    // Raw output stream of the socket, used when relaying proxied responses so client write errors are not swallowed
+    private OutputStream clientOut;
+    // Whether the current request came in as HTTP/1.1
+    private boolean http11;
+    // Whether the connection should stay open after the current response
+    private boolean keepAlive;
     // Get the carriage return / line feed combination
     private String crlf = HtmlUtil.getCRLF();
 
-    ServerWorker(Socket s) {// Constructor to initialize socket
+    ServerWorker(Socket s, ArrayList<ProxyRoute> r) {// Constructor to initialize socket and proxy routes
         sock = s;
+        routes = r;
     }
 
     // Compose error message into html format
@@ -84,6 +118,16 @@ class ServerWorker extends Thread {
                 header = "HTTP/1.1 404 Not Found";
                 message = composeHttpError("404 Not Found", "Not Found", "The requested URL " + filePath + " was not found on this server.");
                 break;
+            // Bad Gateway
+            case 502:
+                header = "HTTP/1.1 502 Bad Gateway";
+                message = composeHttpError("502 Bad Gateway", "Bad Gateway", "The proxy server received an invalid response from an upstream server while serving " + filePath + ".");
+                break;
+            // Service Unavailable
+            case 503:
+                header = "HTTP/1.1 503 Service Unavailable";
+                message = composeHttpError("503 Service Unavailable", "Service Unavailable", "No upstream server is currently available to serve " + filePath + ". Please try again later.");
+                break;
             // Just in case, can be ignored
             default:
                 header = "";
@@ -91,11 +135,18 @@ class ServerWorker extends Thread {
         }
 
         // Send composed HTTP error message out
-        sendHttpMessage(header, Integer.toString(message.length()), "text/html", message, out);
+        sendHttpMessage(header, "text/html", message, out);
+    }
+
+    // Tell the client whether this connection will stay open after the response
+    private String getConnectionHeader() {
+        return "Connection: " + (keepAlive ? "keep-alive" : "close");
     }
 
     // Method to send HTTP message
-    private void sendHttpMessage(String header, String contentLen, String contentType, String content, PrintStream out) {
+    private void sendHttpMessage(String header, String contentType, String content, PrintStream out) {
+        // Content length is counted in bytes of the encoded content, so that clients on a persistent connection know where the next response begins
+        String contentLen = Integer.toString(content.getBytes(CHARSET).length);
         // Print header + crlf + content length + crlf + content type, followed by two crlfs and then the message content as convention
         out.print(header);
         out.print(crlf);
@@ -103,6 +154,8 @@ class ServerWorker extends Thread {
         out.print(crlf);
         out.print("Content-Type: " + contentType);
         out.print(crlf);
+        out.print(getConnectionHeader());
+        out.print(crlf);
         out.print(crlf);
         out.print(content);
         // Flush the output stream for safe
@@ -119,6 +172,8 @@ class ServerWorker extends Thread {
         out.print(crlf);
         out.print("Content-Type: " + contentType);
         out.print(crlf);
+        out.print(getConnectionHeader());
+        out.print(crlf);
         out.print(crlf);
         // Use PrintStream.write() method to write binary data
         try {
@@ -142,6 +197,8 @@ class ServerWorker extends Thread {
         System.out.print(crlf);
         System.out.print("Content-Type: " + contentType);
         System.out.print(crlf);
+        System.out.print(getConnectionHeader());
+        System.out.print(crlf);
         System.out.print(crlf);
         System.out.print(content);
         System.out.println("======== End server reply ========");
@@ -186,7 +243,7 @@ class ServerWorker extends Thread {
         StringBuilder sb = new StringBuilder();
         String textFromFile = "";
         try {
-            BufferedReader in = new BufferedReader(new FileReader(file));
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
             // If not done reading
             while ((textFromFile = in.readLine()) != null) {
                 // Read a line out from file, append crlf to it
@@ -202,7 +259,7 @@ class ServerWorker extends Thread {
         }
 
         // Send successful message and file content back
-        sendHttpMessage("HTTP/1.1 200 OK", Long.toString(file.length()), contentType, textFromFile, out);
+        sendHttpMessage("HTTP/1.1 200 OK", contentType, textFromFile, out);
     }
 
     // If the directory requested by GET can be found on server side
@@ -229,7 +286,7 @@ class ServerWorker extends Thread {
         content = HtmlUtil.appendHtml(content);
 
         // Send successful message and constructed html information back
-        sendHttpMessage("HTTP/1.1 200 OK", Integer.toString(content.length()), "text/html", content, out);
+        sendHttpMessage("HTTP/1.1 200 OK", "text/html", content, out);
     }
 
     // Method to iterate through current folder and to gather information for files and directories, results are stored in resultList
@@ -288,7 +345,7 @@ class ServerWorker extends Thread {
             errorMessage = HtmlUtil.appendPre(errorMessage);
             errorMessage = HtmlUtil.appendHtml(errorMessage);
             // Send error message out
-            sendHttpMessage("HTTP/1.1 200 OK", Integer.toString(errorMessage.length()), "text/html", errorMessage, out);
+            sendHttpMessage("HTTP/1.1 200 OK", "text/html", errorMessage, out);
         } else {
             // If no error message, we are good to go, add num1 and num2 together
             int addResult = num1 + num2;
@@ -298,7 +355,7 @@ class ServerWorker extends Thread {
             successMessage = HtmlUtil.appendPre(successMessage);
             successMessage = HtmlUtil.appendHtml(successMessage);
             // Send success message out
-            sendHttpMessage("HTTP/1.1 200 OK", Integer.toString(successMessage.length()), "text/html", successMessage, out);
+            sendHttpMessage("HTTP/1.1 200 OK", "text/html", successMessage, out);
         }
     }
 
@@ -362,46 +419,334 @@ class ServerWorker extends Thread {
         }
     }
 
+    // Find the proxy route responsible for a request target, null if it should be served locally
+    private ProxyRoute findRoute(String target) {
+        // Routes are sorted longest prefix first, so the first match is the most specific one
+        for (ProxyRoute route : routes) {
+            if (route.matches(target)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    // Method to send the request head to an upstream server
+    private void writeUpstreamRequest(UpstreamConnection conn, Upstream upstream, String method, String target, ArrayList<String> headers) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        // Always talk HTTP/1.1 to the upstream so the connection can go back into the pool afterwards
+        sb.append(method).append(" ").append(target).append(" HTTP/1.1").append(crlf);
+        sb.append("Host: ").append(upstream).append(crlf);
+        for (String header : HttpUtil.removeHopByHop(headers)) {
+            String name = HttpUtil.getHeaderName(header);
+            // Host and X-Forwarded-For are rewritten below, Expect is answered by the proxy itself
+            if (!name.equalsIgnoreCase("Host") && !name.equalsIgnoreCase("X-Forwarded-For") && !name.equalsIgnoreCase("Expect")) {
+                sb.append(header).append(crlf);
+            }
+        }
+        // Let the upstream know who the request originally came from
+        String forwardedFor = HttpUtil.getHeader(headers, "X-Forwarded-For");
+        String clientAddress = sock.getInetAddress().getHostAddress();
+        sb.append("X-Forwarded-For: ").append(forwardedFor == null ? clientAddress : forwardedFor + ", " + clientAddress).append(crlf);
+        sb.append("Connection: keep-alive").append(crlf);
+        sb.append(crlf);
+        conn.out.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    // Method to pass the upstream response on to the client, the body is streamed through as it arrives
+    private void relayResponse(UpstreamConnection conn, String statusLine, ArrayList<String> headers, boolean noBody, boolean chunked, long contentLength) throws IOException {
+        // HTTP/1.0 clients do not understand chunked encoding, so strip it off for them
+        boolean dechunk = chunked && !http11;
+
+        boolean hasTransferEncoding = HttpUtil.getCombinedHeader(headers, "Transfer-Encoding") != null;
+
+        StringBuilder sb = new StringBuilder();
+        // Keep the status code and reason phrase, but speak our own protocol version
+        sb.append("HTTP/1.1").append(statusLine.substring(statusLine.indexOf(' '))).append(crlf);
+        for (String header : HttpUtil.removeHopByHop(headers)) {
+            String name = HttpUtil.getHeaderName(header);
+            // A body with a transfer coding is not framed by Content-Length, never pass one along with it
+            if (!(dechunk && name.equalsIgnoreCase("Transfer-Encoding")) && !(hasTransferEncoding && name.equalsIgnoreCase("Content-Length"))) {
+                sb.append(header).append(crlf);
+            }
+        }
+        sb.append(getConnectionHeader()).append(crlf);
+        sb.append(crlf);
+        clientOut.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        if (noBody) {
+            // Nothing follows the head
+        } else if (chunked) {
+            HttpUtil.copyChunked(conn.in, clientOut, dechunk);
+        } else if (contentLength >= 0) {
+            HttpUtil.copyFixed(conn.in, clientOut, contentLength);
+        } else {
+            // The upstream marks the end of the body by closing the connection
+            HttpUtil.copyUntilEof(conn.in, clientOut);
+        }
+        clientOut.flush();
+    }
+
+    // Method to forward a request matching a proxy route to one of the route's upstream servers
+    private void processProxyRequest(ProxyRoute route, String method, String target, ArrayList<String> headers,
+                                     boolean chunked, long contentLength, InputStream in, PrintStream out) throws IOException {
+        String upstreamTarget = route.rewrite(target);
+        // Requests for the same path hash to the same upstream
+        String key = upstreamTarget.split("\\?")[0];
+        boolean hasBody = chunked || contentLength > 0;
+        // HTTP/1.1 clients sending "Expect: 100-continue" hold the body back until they are told to go on
+        boolean expectContinue = http11 && hasBody && HttpUtil.hasToken(HttpUtil.getCombinedHeader(headers, "Expect"), "100-continue");
+        // Only these may be sent again after the upstream might already have acted on them
+        boolean idempotent = method.equals("GET") || method.equals("HEAD") || method.equals("PUT") || method.equals("DELETE") || method.equals("OPTIONS");
+        // Upstreams that already failed this request
+        ArrayList<Upstream> tried = new ArrayList<>();
+
+        while (true) {
+            Upstream upstream = route.choose(key, tried);
+            if (upstream == null) {
+                // Every upstream is ejected or has already failed this request, the unread body means we cannot keep the connection
+                keepAlive = keepAlive && !hasBody;
+                sendHttpError(tried.isEmpty() ? 503 : 502, target, out);
+                return;
+            }
+
+            UpstreamConnection conn;
+            try {
+                conn = upstream.acquire();
+            } catch (IOException ioe) {
+                // Nothing was sent yet, so it is safe to try another upstream
+                System.out.println("Cannot connect to upstream " + upstream + ": " + ioe.getMessage());
+                upstream.recordFailure();
+                tried.add(upstream);
+                continue;
+            }
+            System.out.println("Proxying " + method + " " + upstreamTarget + " to " + upstream);
+
+            // Send the request head, followed by the body straight from the client
+            boolean bodySent = false;
+            // Set when the upstream stopped taking the body, usually because it has already answered without reading it
+            UpstreamException bodyFailure = null;
+            try {
+                writeUpstreamRequest(conn, upstream, method, upstreamTarget, headers);
+                if (hasBody) {
+                    bodySent = true;
+                    if (expectContinue) {
+                        // The upstream never sees the Expect header, so tell the client to send the body ourselves
+                        clientOut.write(("HTTP/1.1 100 Continue" + crlf + crlf).getBytes(StandardCharsets.ISO_8859_1));
+                        clientOut.flush();
+                    }
+                    // Still read the client's body to its end if the upstream stops taking it, so its answer can be passed on
+                    BodyOutputStream body = new BodyOutputStream(conn.out);
+                    if (chunked) {
+                        HttpUtil.copyChunked(in, body, false);
+                    } else {
+                        HttpUtil.copyFixed(in, body, contentLength);
+                    }
+                    body.flush();
+                    bodyFailure = body.getFailure();
+                } else {
+                    conn.out.flush();
+                }
+            } catch (UpstreamException ue) {
+                upstream.release(conn, false);
+                if (conn.isReused() && !bodySent && idempotent) {
+                    // The pooled connection was closed by the upstream while idle, that is not a failure of the upstream itself
+                    upstream.closeIdleConnections();
+                    continue;
+                }
+                System.out.println("Upstream " + upstream + " failed: " + ue.getMessage());
+                upstream.recordFailure();
+                keepAlive = false;
+                sendHttpError(502, target, out);
+                return;
+            } catch (ProtocolException pe) {
+                // The client's chunked body is malformed, the upstream only got part of it so drop that connection
+                upstream.release(conn, false);
+                keepAlive = false;
+                sendHttpError(400, null, out);
+                return;
+            } catch (IOException ioe) {
+                // Reading the body from the client failed, nothing more can be done for this client
+                upstream.release(conn, false);
+                keepAlive = false;
+                throw ioe;
+            }
+
+            // Read the response head
+            String statusLine;
+            ArrayList<String> responseHeaders;
+            boolean noBody;
+            boolean responseChunked;
+            long responseLength;
+            boolean reusable;
+            try {
+                int status;
+                do {
+                    statusLine = HttpUtil.readLine(conn.in);
+                    if (statusLine == null) {
+                        throw new EOFException("Upstream closed the connection");
+                    }
+                    status = HttpUtil.parseStatusCode(statusLine);
+                    responseHeaders = HttpUtil.readHeaders(conn.in);
+                    // Skip interim responses such as 100 Continue, the request body has already been sent anyway
+                } while (status >= 100 && status < 200);
+
+                noBody = method.equals("HEAD") || status == 204 || status == 304;
+                String transferEncoding = HttpUtil.getCombinedHeader(responseHeaders, "Transfer-Encoding");
+                responseChunked = HttpUtil.endsInChunked(transferEncoding);
+                // Any Transfer-Encoding overrides Content-Length, and if it does not end in chunked the body ends when the upstream closes
+                responseLength = transferEncoding != null ? -1 : HttpUtil.getContentLength(responseHeaders);
+                String connection = HttpUtil.getHeader(responseHeaders, "Connection");
+                boolean upstreamKeepAlive = statusLine.startsWith("HTTP/1.1") ? !HttpUtil.hasToken(connection, "close") : HttpUtil.hasToken(connection, "keep-alive");
+                // The connection can only be reused if we can tell where the body ends, and if the upstream took all of the request
+                reusable = upstreamKeepAlive && (noBody || responseChunked || responseLength >= 0) && bodyFailure == null;
+
+                if (status == 502 || status == 503 || status == 504) {
+                    upstream.recordFailure();
+                } else {
+                    upstream.recordSuccess();
+                }
+            } catch (IOException ioe) {
+                upstream.release(conn, false);
+                // A timed out upstream may well have processed the request and is only slow to answer, never send it again
+                boolean timedOut = ioe instanceof SocketTimeoutException || ioe.getCause() instanceof SocketTimeoutException;
+                boolean retryable = !bodySent && idempotent && !timedOut;
+                if (conn.isReused() && retryable) {
+                    // Stale pooled connection, retry on a fresh one
+                    upstream.closeIdleConnections();
+                    continue;
+                }
+                // If the body could not be sent either, that was the upstream failing, not just answering early
+                System.out.println("Upstream " + upstream + " failed: " + (bodyFailure != null ? bodyFailure.getMessage() : ioe.getMessage()));
+                upstream.recordFailure();
+                if (!retryable) {
+                    // The body is gone, or the request must not run twice, so it cannot go to another upstream
+                    sendHttpError(502, target, out);
+                    return;
+                }
+                tried.add(upstream);
+                continue;
+            }
+            if (bodyFailure != null) {
+                System.out.println("Upstream " + upstream + " answered without reading the whole request body: " + bodyFailure.getMessage());
+            }
+            System.out.println(statusLine);
+
+            // Without a length or chunked encoding, or with a chunked body for an HTTP/1.0 client, the end of the response is marked by closing the connection
+            if (!noBody && ((!responseChunked && responseLength < 0) || (responseChunked && !http11))) {
+                keepAlive = false;
+            }
+
+            boolean completed = false;
+            try {
+                relayResponse(conn, statusLine, responseHeaders, noBody, responseChunked, responseLength);
+                completed = true;
+            } catch (IOException ioe) {
+                keepAlive = false;
+                // Reads from the upstream fail with these, writes to the client with anything else
+                if (ioe instanceof UpstreamException || ioe instanceof EOFException || ioe instanceof ProtocolException) {
+                    // Part of the response has already been sent, all we can do is cut the client off
+                    System.out.println("Upstream " + upstream + " failed mid-response: " + ioe.getMessage());
+                    upstream.recordFailure();
+                    return;
+                }
+                throw ioe;
+            } finally {
+                upstream.release(conn, completed && reusable);
+            }
+            return;
+        }
+    }
+
+    // Read one request off the connection and answer it, returns whether the connection should stay open for another one
+    private boolean serveRequest(InputStream in, PrintStream out) throws IOException {
+        // Read request line from client (browser), tolerating empty lines in front of it
+        String request;
+        do {
+            request = HttpUtil.readLine(in);
+        } while (request != null && request.isEmpty());
+        if (request == null) {
+            // Client closed the connection
+            return false;
+        }
+        System.out.println(request);
+        ArrayList<String> headers = HttpUtil.readHeaders(in);
+        for (String header : headers) {
+            System.out.println(header);
+        }
+
+        // Split the request line by white spaces into method, path and protocol version
+        String[] subStr = request.split("\\s+");
+        http11 = subStr.length > 2 && subStr[2].equalsIgnoreCase("HTTP/1.1");
+        // HTTP/1.1 connections are persistent unless the client says otherwise, HTTP/1.0 ones only when asked for
+        String connection = HttpUtil.getHeader(headers, "Connection");
+        keepAlive = http11 ? !HttpUtil.hasToken(connection, "close") : HttpUtil.hasToken(connection, "keep-alive");
+
+        boolean chunked;
+        long contentLength;
+        try {
+            chunked = HttpUtil.isChunked(headers);
+            contentLength = HttpUtil.getContentLength(headers);
+            // A body framed both ways could be read differently by an upstream than by us, leaving bytes behind on a pooled connection
+            if (chunked && contentLength >= 0) {
+                throw new ProtocolException("Both Transfer-Encoding and Content-Length present");
+            }
+        } catch (ProtocolException pe) {
+            // Cannot tell where the body ends, send 400 error and give up on the connection
+            keepAlive = false;
+            sendHttpError(400, null, out);
+            return false;
+        }
+
+        ProxyRoute route = subStr.length > 1 ? findRoute(subStr[1]) : null;
+        if (route != null) {
+            // Call method to forward the request to an upstream server
+            processProxyRequest(route, subStr[0], subStr[1], headers, chunked, contentLength, in, out);
+        } else {
+            // We never read request bodies for local content, so the connection cannot be reused if there is one
+            if (chunked || contentLength > 0) {
+                keepAlive = false;
+            }
+            // If it is a GET request and has arguments
+            if (subStr.length > 1 && subStr[0].equals("GET")) {
+                // The string after the first white space is the path the server is trying to get, the request line was read
+                // byte for byte so decode it with the same charset that we use for file names and for what we send back
+                String filePath = new String(subStr[1].getBytes(StandardCharsets.ISO_8859_1), CHARSET);
+                // Call method to handle GET request
+                processGetRequest(filePath, out);
+            } else {
+                // The HTTP GET request is invalid, send 400 error out
+                keepAlive = false;
+                sendHttpError(400, null, out);
+            }
+        }
+        System.out.println();
+        return keepAlive;
+    }
+
     // Define the behavior of a running thread
     public void run() {
         PrintStream out;
-        BufferedReader in;
+        InputStream in;
         try {
-            // Initialize the input stream of the socket as BufferedReader
-            in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+            // Initialize the input stream of the socket as BufferedInputStream, request bodies may have to be relayed byte by byte
+            in = new BufferedInputStream(sock.getInputStream());
             // Initialize the output stream of the socket as PrintStream
-            out = new PrintStream(sock.getOutputStream());
-            // Hold the request string
-            String request;
-            String[] subStr = {};
+            out = new PrintStream(sock.getOutputStream(), false, CHARSET.name());
+            clientOut = new BufferedOutputStream(sock.getOutputStream());
+            // Do not wait forever for the next request on a persistent connection
+            sock.setSoTimeout(KEEP_ALIVE_TIMEOUT);
 
             try {
-                // Read request from client (browser)
-                while (!(request = in.readLine()).isEmpty()) {
-                    System.out.println(request);
-                    // If it is a GET request (not taking consideration into HTTP protocol version or Host info at this time to simplify the problem)
-                    if (request.contains("GET")) {
-                        // Split the request string by white spaces
-                        subStr = request.split("\\s+");
-                    }
-                }
-                // If the HTTP GET request has arguments
-                if (subStr.length > 1) {
-                    // The string after the first white space is the path the server is trying to get
-                    String filePath = subStr[1];
-                    // Call method to handle GET request
-                    processGetRequest(filePath, out);
-                } else {
-                    // The HTTP GET request is invalid, send 400 error out
-                    sendHttpError(400, null, out);
+                // Keep serving requests on this connection until either side wants to close it
+                while (serveRequest(in, out)) {
                 }
+            } catch (SocketTimeoutException ste) {
+                // The connection sat idle for too long, just close it
             } catch (IOException ioe) {
                 // In case of read from input stream fails
                 System.out.println("Server read error");
                 ioe.printStackTrace();
-            } catch (NullPointerException npe) {
             }
-            System.out.println();
             // Close everything
             out.close();
             in.close();
@@ -463,6 +808,620 @@ class HtmlUtil {
     }
 }
 
+// Helper class for reading and relaying HTTP messages on raw byte streams
+class HttpUtil {
+    // Longest request / status / header line we are willing to read
+    private static final int MAX_LINE_LENGTH = 8192;
+    // Most header lines we are willing to read for one message
+    private static final int MAX_HEADERS = 100;
+    // Size of the buffer used when relaying bodies
+    private static final int BUFFER_SIZE = 8192;
+    // Headers that only apply to a single connection and must not be passed on by a proxy (Transfer-Encoding is
+    // left out on purpose, chunked bodies are relayed as they are)
+    private static final String[] HOP_BY_HOP = {"Connection", "Keep-Alive", "Proxy-Connection", "TE", "Trailer", "Upgrade"};
+    private static final byte[] CRLF = HtmlUtil.getCRLF().getBytes(StandardCharsets.ISO_8859_1);
+
+    // Read a line ending in crlf (or just lf), returns null if the stream ends before anything was read
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                // Drop the carriage return in front of the line feed
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            if (sb.length() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("Line too long");
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    // Read header lines up to and including the empty line that ends them
+    static ArrayList<String> readHeaders(InputStream in) throws IOException {
+        ArrayList<String> headers = new ArrayList<>();
+        String line;
+        while (true) {
+            line = readLine(in);
+            if (line == null) {
+                throw new EOFException("Connection closed inside message headers");
+            }
+            if (line.isEmpty()) {
+                return headers;
+            }
+            if (headers.size() >= MAX_HEADERS) {
+                throw new ProtocolException("Too many header lines");
+            }
+            headers.add(line);
+        }
+    }
+
+    // Get the name part of a header line
+    static String getHeaderName(String header) {
+        int colon = header.indexOf(':');
+        return colon < 0 ? header.trim() : header.substring(0, colon).trim();
+    }
+
+    // Get the value of the first header with the given name, null if there is none
+    static String getHeader(ArrayList<String> headers, String name) {
+        for (String header : headers) {
+            int colon = header.indexOf(':');
+            if (colon >= 0 && header.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return header.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    // Get the values of all headers with the given name joined by commas (as if sent in one line), null if there is none
+    static String getCombinedHeader(ArrayList<String> headers, String name) {
+        String result = null;
+        for (String header : headers) {
+            int colon = header.indexOf(':');
+            if (colon >= 0 && header.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                String value = header.substring(colon + 1).trim();
+                result = result == null ? value : result + ", " + value;
+            }
+        }
+        return result;
+    }
+
+    // Check whether a comma separated header value contains the given token, e.g. "close" in "Connection: close"
+    static boolean hasToken(String value, String token) {
+        if (value == null) {
+            return false;
+        }
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Get the Content-Length of a message, -1 if it has none, repeated headers must all agree
+    static long getContentLength(ArrayList<String> headers) throws ProtocolException {
+        String value = getCombinedHeader(headers, "Content-Length");
+        if (value == null) {
+            return -1;
+        }
+        long len = -1;
+        for (String part : value.split(",")) {
+            long partLen;
+            try {
+                partLen = Long.parseLong(part.trim());
+            } catch (NumberFormatException nfe) {
+                throw new ProtocolException("Invalid Content-Length: " + value);
+            }
+            if (partLen < 0 || (len >= 0 && partLen != len)) {
+                throw new ProtocolException("Invalid Content-Length: " + value);
+            }
+            len = partLen;
+        }
+        return len;
+    }
+
+    // Check whether the last coding of a Transfer-Encoding value is chunked, only then do the chunks frame the body
+    static boolean endsInChunked(String value) {
+        if (value == null) {
+            return false;
+        }
+        String[] codings = value.split(",");
+        return codings[codings.length - 1].trim().equalsIgnoreCase("chunked");
+    }
+
+    // Check whether a request body is chunked, chunked has to be the last transfer coding or the body cannot be framed at all
+    static boolean isChunked(ArrayList<String> headers) throws ProtocolException {
+        String value = getCombinedHeader(headers, "Transfer-Encoding");
+        if (value == null) {
+            return false;
+        }
+        if (!endsInChunked(value)) {
+            throw new ProtocolException("Transfer-Encoding does not end in chunked: " + value);
+        }
+        return true;
+    }
+
+    // Get the status code out of a response status line like "HTTP/1.1 200 OK"
+    static int parseStatusCode(String statusLine) throws ProtocolException {
+        String[] subStr = statusLine.split(" ", 3);
+        if (subStr.length > 1 && subStr[0].startsWith("HTTP/")) {
+            try {
+                return Integer.parseInt(subStr[1]);
+            } catch (NumberFormatException nfe) {
+            }
+        }
+        throw new ProtocolException("Malformed status line: " + statusLine);
+    }
+
+    // Drop hop-by-hop headers, including any the Connection header names, before passing a message on
+    static ArrayList<String> removeHopByHop(ArrayList<String> headers) {
+        String connection = getHeader(headers, "Connection");
+        ArrayList<String> result = new ArrayList<>();
+        for (String header : headers) {
+            String name = getHeaderName(header);
+            boolean hopByHop = hasToken(connection, name);
+            for (String h : HOP_BY_HOP) {
+                hopByHop = hopByHop || h.equalsIgnoreCase(name);
+            }
+            if (!hopByHop) {
+                result.add(header);
+            }
+        }
+        return result;
+    }
+
+    // Relay exactly len bytes
+    static void copyFixed(InputStream in, OutputStream out, long len) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (len > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, len));
+            if (n < 0) {
+                throw new EOFException("Connection closed inside message body");
+            }
+            out.write(buffer, 0, n);
+            // Flush right away, so the receiver gets the body as it arrives instead of when it is complete
+            out.flush();
+            len -= n;
+        }
+    }
+
+    // Relay everything until the stream ends
+    static void copyUntilEof(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+            out.flush();
+        }
+    }
+
+    // Relay a chunked body chunk by chunk, either as it is or with the chunk framing stripped off
+    static void copyChunked(InputStream in, OutputStream out, boolean dechunk) throws IOException {
+        while (true) {
+            String sizeLine = readLine(in);
+            if (sizeLine == null) {
+                throw new EOFException("Connection closed inside chunked body");
+            }
+            long size;
+            try {
+                // Chunk extensions after ";" are ignored
+                int semicolon = sizeLine.indexOf(';');
+                size = Long.parseLong((semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+            } catch (NumberFormatException nfe) {
+                throw new ProtocolException("Invalid chunk size: " + sizeLine);
+            }
+            if (size < 0) {
+                throw new ProtocolException("Invalid chunk size: " + sizeLine);
+            }
+            if (!dechunk) {
+                out.write(sizeLine.getBytes(StandardCharsets.ISO_8859_1));
+                out.write(CRLF);
+            }
+            if (size == 0) {
+                // Last chunk, followed by optional trailers and an empty line
+                String trailer;
+                do {
+                    trailer = readLine(in);
+                    if (trailer == null) {
+                        throw new EOFException("Connection closed inside chunked trailer");
+                    }
+                    if (!dechunk) {
+                        out.write(trailer.getBytes(StandardCharsets.ISO_8859_1));
+                        out.write(CRLF);
+                    }
+                } while (!trailer.isEmpty());
+                out.flush();
+                return;
+            }
+            copyFixed(in, out, size);
+            // Every chunk's data is followed by crlf
+            String end = readLine(in);
+            if (end == null || !end.isEmpty()) {
+                throw new ProtocolException("Missing crlf after chunk");
+            }
+            if (!dechunk) {
+                out.write(CRLF);
+            }
+        }
+    }
+}
+
+// Thrown when reading from or writing to an upstream server fails, to tell it apart from failures on the client side
+class UpstreamException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    UpstreamException(IOException cause) {
+        super(cause.getMessage(), cause);
+    }
+}
+
+// Passes a request body on to an upstream server, but once the upstream stops taking it keeps swallowing the rest,
+// so the client's body is still read to its end and the upstream's early answer (e.g. 400) can be passed on
+class BodyOutputStream extends FilterOutputStream {
+    // First failure writing to the upstream, null while everything went through
+    private UpstreamException failure;
+
+    BodyOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (failure == null) {
+            try {
+                out.write(b);
+            } catch (UpstreamException ue) {
+                failure = ue;
+            }
+        }
+    }
+
+    // FilterOutputStream would otherwise write the array one byte at a time
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (failure == null) {
+            try {
+                out.write(b, off, len);
+            } catch (UpstreamException ue) {
+                failure = ue;
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (failure == null) {
+            try {
+                out.flush();
+            } catch (UpstreamException ue) {
+                failure = ue;
+            }
+        }
+    }
+
+    UpstreamException getFailure() {
+        return failure;
+    }
+}
+
+// A persistent connection to an upstream server, kept in the upstream's pool between requests
+class UpstreamConnection {
+    // How long (in milliseconds) to wait for the upstream to accept a connection
+    private static final int CONNECT_TIMEOUT = 2000;
+    // How long (in milliseconds) to wait for the upstream to send something
+    private static final int READ_TIMEOUT = 30000;
+    // How long (in milliseconds) a connection may sit in the pool, kept below MyWebServer's own keep-alive timeout
+    // so that we give up on the connection before the upstream does
+    private static final long IDLE_TIMEOUT = 4000;
+
+    private Socket sock;
+    // Streams of the socket, any I/O error on them is turned into an UpstreamException
+    final InputStream in;
+    final OutputStream out;
+    // Whether the connection has already served a request before the current one
+    private boolean reused;
+    // When the connection was last put back into the pool
+    private long lastUsed;
+
+    UpstreamConnection(String host, int port) throws IOException {
+        sock = new Socket();
+        try {
+            sock.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            sock.setSoTimeout(READ_TIMEOUT);
+            // Request heads and body pieces are flushed as soon as they are complete, do not hold them back
+            sock.setTcpNoDelay(true);
+        } catch (IOException ioe) {
+            sock.close();
+            throw ioe;
+        }
+        in = new FilterInputStream(new BufferedInputStream(sock.getInputStream())) {
+            @Override
+            public int read() throws IOException {
+                try {
+                    return super.read();
+                } catch (IOException ioe) {
+                    throw new UpstreamException(ioe);
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    return super.read(b, off, len);
+                } catch (IOException ioe) {
+                    throw new UpstreamException(ioe);
+                }
+            }
+        };
+        out = new FilterOutputStream(new BufferedOutputStream(sock.getOutputStream())) {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    out.write(b);
+                } catch (IOException ioe) {
+                    throw new UpstreamException(ioe);
+                }
+            }
+
+            // FilterOutputStream would otherwise write the array one byte at a time
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException ioe) {
+                    throw new UpstreamException(ioe);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                try {
+                    out.flush();
+                } catch (IOException ioe) {
+                    throw new UpstreamException(ioe);
+                }
+            }
+        };
+    }
+
+    boolean isReused() {
+        return reused;
+    }
+
+    // Called when the connection is put back into the pool
+    void markIdle() {
+        reused = true;
+        lastUsed = System.currentTimeMillis();
+    }
+
+    // Whether the connection has been idle for too long to be trusted
+    boolean isExpired(long now) {
+        return now - lastUsed > IDLE_TIMEOUT;
+    }
+
+    void close() {
+        try {
+            sock.close();
+        } catch (IOException ioe) {
+            // Nothing to do, the connection is being thrown away anyway
+        }
+    }
+}
+
+// One upstream server of a proxy route, with its connection pool and passive health state
+class Upstream {
+    // Most idle connections kept in the pool
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    // Consecutive failures after which the upstream is ejected
+    private static final int MAX_FAILURES = 3;
+    // How long (in milliseconds) an ejected upstream gets no requests
+    private static final long EJECTION_TIME = 10000;
+
+    private final String host;
+    private final int port;
+    // Idle connections, most recently used first
+    private final ConcurrentLinkedDeque<UpstreamConnection> idle = new ConcurrentLinkedDeque<>();
+    // Requests currently being served by this upstream
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private int consecutiveFailures;
+    // Time until which the upstream is ejected
+    private long ejectedUntil;
+
+    Upstream(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Take a connection for a request, reusing a pooled one if possible, must be handed back with release()
+    UpstreamConnection acquire() throws IOException {
+        outstanding.incrementAndGet();
+        long now = System.currentTimeMillis();
+        UpstreamConnection conn;
+        // The most recently used connection is the least likely to have been closed by the upstream
+        while ((conn = idle.pollFirst()) != null) {
+            if (!conn.isExpired(now)) {
+                return conn;
+            }
+            conn.close();
+        }
+        try {
+            return new UpstreamConnection(host, port);
+        } catch (IOException ioe) {
+            outstanding.decrementAndGet();
+            throw ioe;
+        }
+    }
+
+    // Hand a connection back after a request, it goes back into the pool only if it is in a clean state
+    void release(UpstreamConnection conn, boolean reusable) {
+        outstanding.decrementAndGet();
+        if (reusable && idle.size() < MAX_IDLE_CONNECTIONS) {
+            conn.markIdle();
+            idle.offerFirst(conn);
+        } else {
+            conn.close();
+        }
+    }
+
+    // Throw away all pooled connections, e.g. after finding one of them closed by the upstream
+    void closeIdleConnections() {
+        UpstreamConnection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            conn.close();
+        }
+    }
+
+    int getOutstanding() {
+        return outstanding.get();
+    }
+
+    synchronized boolean isAvailable(long now) {
+        return now >= ejectedUntil;
+    }
+
+    synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+    }
+
+    synchronized void recordFailure() {
+        consecutiveFailures++;
+        long now = System.currentTimeMillis();
+        // Requests that were already in flight when the upstream got ejected do not extend the ejection
+        if (consecutiveFailures >= MAX_FAILURES && now >= ejectedUntil) {
+            ejectedUntil = now + EJECTION_TIME;
+            // A single further failure once the ejection is over ejects the upstream again
+            consecutiveFailures = MAX_FAILURES - 1;
+            System.out.println("Ejecting upstream " + this + " for " + EJECTION_TIME / 1000 + " seconds.");
+            closeIdleConnections();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
+
+// A path prefix whose requests are forwarded to a set of upstream servers
+class ProxyRoute {
+    // Balancing methods
+    static final String LEAST_OUTSTANDING = "least";
+    static final String CONSISTENT_HASH = "hash";
+    // Points each upstream gets on the hash ring, more points spread the keys more evenly
+    private static final int VIRTUAL_NODES = 100;
+
+    private final String prefix;
+    private final String balance;
+    private final ArrayList<Upstream> upstreams;
+    // Hash ring for consistent hashing, maps points to upstreams
+    private final TreeMap<Integer, Upstream> ring = new TreeMap<>();
+    // Where the next least outstanding search starts, so ties are spread round robin
+    private final AtomicInteger nextStart = new AtomicInteger();
+
+    ProxyRoute(String prefix, String balance, ArrayList<Upstream> upstreams) {
+        this.prefix = prefix;
+        this.balance = balance;
+        this.upstreams = upstreams;
+        for (Upstream upstream : upstreams) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(upstream + "#" + i), upstream);
+            }
+        }
+    }
+
+    // Build a route from command-line arguments, e.g. "/api/", "least", "localhost:2541,localhost:2542"
+    static ProxyRoute parse(String prefix, String balance, String upstreamList) {
+        if (!prefix.startsWith("/")) {
+            throw new IllegalArgumentException("Proxy prefix must start with \"/\": " + prefix);
+        }
+        if (!balance.equals(LEAST_OUTSTANDING) && !balance.equals(CONSISTENT_HASH)) {
+            throw new IllegalArgumentException("Unknown balancing method (use least or hash): " + balance);
+        }
+        ArrayList<Upstream> upstreams = new ArrayList<>();
+        for (String hostPort : upstreamList.split(",")) {
+            int colon = hostPort.lastIndexOf(':');
+            try {
+                upstreams.add(new Upstream(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1))));
+            } catch (RuntimeException re) {
+                throw new IllegalArgumentException("Upstream must look like host:port: " + hostPort);
+            }
+        }
+        return new ProxyRoute(prefix, balance, upstreams);
+    }
+
+    String getPrefix() {
+        return prefix;
+    }
+
+    // Whether a request target falls under this route, "/api" matches "/api", "/api/x" and "/api?x" but not "/apix"
+    boolean matches(String target) {
+        if (!target.startsWith(prefix)) {
+            return false;
+        }
+        return prefix.endsWith("/") || target.length() == prefix.length() || "/?".indexOf(target.charAt(prefix.length())) >= 0;
+    }
+
+    // Strip the prefix off a request target, what is left is the target on the upstream
+    String rewrite(String target) {
+        String rest = target.substring(prefix.length());
+        return rest.startsWith("/") ? rest : "/" + rest;
+    }
+
+    // Pick the upstream for a request, skipping ejected ones and those in tried, null if none is left
+    Upstream choose(String key, ArrayList<Upstream> tried) {
+        long now = System.currentTimeMillis();
+        if (balance.equals(CONSISTENT_HASH)) {
+            // Walk the ring clockwise from the key's point, wrapping around at the end
+            int point = hash(key);
+            for (Upstream upstream : ring.tailMap(point).values()) {
+                if (upstream.isAvailable(now) && !tried.contains(upstream)) {
+                    return upstream;
+                }
+            }
+            for (Upstream upstream : ring.headMap(point).values()) {
+                if (upstream.isAvailable(now) && !tried.contains(upstream)) {
+                    return upstream;
+                }
+            }
+            return null;
+        }
+
+        // Least outstanding requests
+        Upstream best = null;
+        int start = nextStart.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < upstreams.size(); i++) {
+            Upstream upstream = upstreams.get((start + i) % upstreams.size());
+            if (upstream.isAvailable(now) && !tried.contains(upstream)
+                    && (best == null || upstream.getOutstanding() < best.getOutstanding())) {
+                best = upstream;
+            }
+        }
+        return best;
+    }
+
+    // Spread the bits of String.hashCode() (MurmurHash3 finalizer) so similar keys land far apart on the ring
+    private static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return prefix + " -> " + upstreams + " (" + (balance.equals(CONSISTENT_HASH) ? "consistent hash" : "least outstanding") + ")";
+    }
+}
+
 public class MyWebServer {
     // Define default port number
     private static final int DEFAULT_PORT = 2540;
@@ -473,17 +1432,50 @@ public class MyWebServer {
         int q_len = 6;
         // Initialize port number to default
         int port = DEFAULT_PORT;
+        // Reverse proxy routes given on the command line
+        ArrayList<ProxyRoute> routes = new ArrayList<>();
+
+        int i = 0;
+        // Optional custom port number comes first
+        if (args.length > 0 && !args[0].startsWith("-")) {
+            try {
+                port = Integer.parseInt(args[0]);
+            } catch (NumberFormatException nfe) {
+                System.out.println("Cannot convert custom port to a valid number.");
+                return;
+            }
+            i++;
+        }
+        // Followed by any number of "-proxy <prefix> <least|hash> <host:port>[,<host:port>...]"
+        while (i < args.length) {
+            if (!args[i].equals("-proxy") || i + 3 >= args.length) {
+                System.out.println("Usage: java MyWebServer [port] [-proxy <prefix> <least|hash> <host:port>[,<host:port>...]]...");
+                return;
+            }
+            try {
+                routes.add(ProxyRoute.parse(args[i + 1], args[i + 2], args[i + 3]));
+            } catch (IllegalArgumentException iae) {
+                System.out.println(iae.getMessage());
+                return;
+            }
+            i += 4;
+        }
+        // Longest prefix first, so the most specific route wins
+        Collections.sort(routes, (a, b) -> b.getPrefix().length() - a.getPrefix().length());
 
         Socket sock;
         // Initialize a new server type socket using port number and queue length
         ServerSocket servSock = new ServerSocket(port, q_len);
         System.out.println("Mingfei Shao's MyWebServer starting up, listening at port " + port + ".\n");
+        for (ProxyRoute route : routes) {
+            System.out.println("Proxying " + route);
+        }
         // Stick here to serve any incoming clients
         while (true) {
             // Wait for client to connect
             sock = servSock.accept();
             // After connected, start a new worker thread to handle client's request, and main thread stays in the loop, waiting for next client
-            new ServerWorker(sock).start();
+            new ServerWorker(sock, routes).start();
         }
 
     }